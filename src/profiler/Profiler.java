@@ -1,17 +1,30 @@
 package profiler;
 
 import javassist.*;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+import javassist.expr.NewExpr;
 
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
 import java.io.ByteArrayInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.security.ProtectionDomain;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.function.*;
 
 /**
  * java-agent
@@ -104,17 +117,43 @@ public class Profiler implements ClassFileTransformer {
 
 
     /**
-     * Join separate threads calculations for methods
+     * How to join separate threads calculations for methods
+     * <p>
+     * {@code ALL} - join all threads:
+     * Sample.mul()   550  110  5
      * <p>
-     * if ={@code false}, report will be:
+     * {@code THREAD} - separate row for each thread name:
      * main@Sample.mul()      200  30  2
      * Thread-1@Sample.mul()  250  50  2
      * Thread-2@Sample.mul()  100  30  1
      * <p>
-     * if ={@code true}, report would be:
-     * Sample.mul()   550  110  5
+     * {@code POOL} - join threads of one pool, {@code pool-3-thread-17} becomes {@code pool-3}:
+     * main@Sample.mul()      200  30  2
+     * Thread@Sample.mul()    350  80  3
+     * <p>
+     * {@code GROUP} - join threads by thread group
+     * <p>
+     * {@code TOP} - separate rows for {@code topThreads} most expensive threads, the rest are joined as "others"
+     */
+    enum ThreadGrouping {ALL, THREAD, POOL, GROUP, TOP}
+
+    /**
+     * Current threads grouping in report
+     * Agent option: {@code threads=all|thread|pool|group|topN}
+     *
+     * @see Profiler#setThreadGrouping(String)
+     */
+    volatile ThreadGrouping threadGrouping = ThreadGrouping.ALL;
+
+    /**
+     * Count of threads, shown separately with {@code ThreadGrouping.TOP}
      */
-    final boolean joinThreadsInReport = true;
+    volatile int topThreads = 10;
+
+    /**
+     * Numeric suffix of thread name in pool, like "-thread-17" or "-worker-3"
+     */
+    private static final Pattern POOL_THREAD_SUFFIX = Pattern.compile("[-_#. ]?(thread|worker)?[-_#. ]?\\d+$");
 
     /**
      * Excluded prefix paths to classes
@@ -122,7 +161,7 @@ public class Profiler implements ClassFileTransformer {
      *
      * @see Profiler#premain(String, Instrumentation)
      */
-    private final List<String> excludedPaths = List.of("java/", "jdk/", "sun/", "com/intellij/");
+    private final List<String> excludedPaths = List.of("java/", "javax/", "jdk/", "sun/", "com/sun/", "com/intellij/");
 
     /**
      * When method execution times more than {@code calcSpeedOnCount}
@@ -132,6 +171,137 @@ public class Profiler implements ClassFileTransformer {
      */
     final int calcSpeedOnCount = 100;
 
+    /**
+     * Subtract estimated cost of {@code enterSection()}/{@code exitSection()} probes
+     * from total and self times in the report
+     *
+     * @see Profiler#addProbeSample(long, long)
+     */
+    final boolean compensateProbeOverhead = true;
+
+    /**
+     * Each {@code probeSampleRate}-th {@code enterSection()} and {@code exitSection()} of a thread is timed
+     * Cost of probe grows with the number of sections, so real probes are measured all the time
+     */
+    final int probeSampleRate = 1024;
+
+    /**
+     * How many probe pairs to time at startup, the same count is executed before as a warm-up
+     *
+     * @see Profiler#calibrate()
+     */
+    final int calibrationProbes = 1000;
+
+    /**
+     * Estimated cost of one {@code enterSection()}, nanoseconds
+     */
+    volatile long enterCostNanos = 0;
+
+    /**
+     * Estimated cost of one {@code exitSection()}, nanoseconds
+     */
+    volatile long exitCostNanos = 0;
+
+    /**
+     * Invocations of any method, longer than this, milliseconds, are saved as slow calls
+     * {@code 0} - switched off
+     * Agent option: {@code slowMs=N}
+     *
+     * @see Profiler#getSlowCallsInfo()
+     */
+    int slowThresholdMs = 0;
+
+    /**
+     * Thresholds for separate methods, milliseconds. Key is a part of method name
+     * Agent option: {@code slowMs.METHOD=N}, for example {@code slowMs.Example1sleeps.sleep=100}
+     */
+    final Map<String, Integer> slowThresholds = new LinkedHashMap<>();
+
+    /**
+     * How many slowest calls to keep for each method
+     * Agent option: {@code slowKeep=N}
+     */
+    int slowCallsKept = 5;
+
+    /**
+     * Save {@code toString()} of arguments of slow calls
+     * Agent option: {@code slowArgs=true}
+     */
+    boolean slowCallsArgs = false;
+
+    /**
+     * Maximum count of stack trace elements, saved for a slow call
+     */
+    final int slowCallStackDepth = 32;
+
+    /**
+     * Link tasks, passed to executors and {@code CompletableFuture}, to the section, where they were submitted
+     * Time of such tasks is reported as {@code [async] PATH} sections and in Async column of submitter
+     * Agent option: {@code async=true}
+     *
+     * @see CallSiteEditor
+     */
+    boolean trackAsyncTasks = false;
+
+    /**
+     * Categories of JDK calls, timed at call sites in inspected methods: {@code io}, {@code jdbc}
+     * Such calls are reported as sections like {@code [io] FileInputStream.read} or {@code [jdbc] executeQuery}
+     * Agent option: {@code calls=io,jdbc}
+     *
+     * @see CallSiteEditor
+     */
+    final Set<String> timedCalls = new HashSet<String>();
+
+    /**
+     * Watch stop-the-world GC pauses, overlapping running sections. Shown in GC column
+     * Agent option: {@code gc=false|true|exclude}
+     *
+     * @see Profiler#watchGcPauses()
+     */
+    boolean trackGcPauses = true;
+
+    /**
+     * Subtract GC pauses from total and self times in the report
+     * Agent option: {@code gc=exclude}
+     */
+    boolean excludeGcPauses = false;
+
+    /**
+     * How many recently finished section runs to keep, GC notification comes after the pause,
+     * so the pause is also charged to runs, finished in between
+     */
+    final int finishedRunsKept = 8192;
+
+    /**
+     * Ring of recently finished section runs: section, thread id, start and end system time
+     */
+    private final Section[] finishedRuns = new Section[finishedRunsKept];
+    private final long[] finishedRunThreads = new long[finishedRunsKept];
+    private final long[] finishedRunStarts = new long[finishedRunsKept];
+    private final long[] finishedRunEnds = new long[finishedRunsKept];
+    private int finishedRunsPos = 0;
+
+    /**
+     * Sum of all GC pauses, milliseconds
+     */
+    long gcPausesTime = 0;
+
+    /**
+     * Count of GC pauses
+     */
+    long gcPausesCount = 0;
+
+    /**
+     * Prefix of sections, measuring time of tasks, submitted in another thread
+     */
+    static final String ASYNC_SECTION = "[async] ";
+
+    /**
+     * Profiler classes, which should not be inspected
+     */
+    private final List<String> agentClasses = List.of("Section", "SectionLink", "ThreadState", "SlowCall",
+            "TaskContext", "CallSiteEditor");
+
     String rootPkg = "";
     String rootPath = "";
     private final ClassPool classPool = ClassPool.getDefault();
@@ -141,18 +311,246 @@ public class Profiler implements ClassFileTransformer {
     /**
      * Default constructor
      *
-     * @param agentArgument [INSPECTED_PACKAGE][;INSPECTED_CLASS1[;INSPECTED_CLASS2[;...]]]
+     * @param agentArgument [INSPECTED_PACKAGE][;INSPECTED_CLASS1[;INSPECTED_CLASS2[;...]]][;OPTION=VALUE[;...]]
      */
     public Profiler(String agentArgument) {
+        this(agentArgument, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param agentArgument [INSPECTED_PACKAGE][;INSPECTED_CLASS1[;INSPECTED_CLASS2[;...]]][;OPTION=VALUE[;...]]
+     * @param startup       watch GC and measure probe cost, {@code false} for private calibration instance
+     */
+    private Profiler(String agentArgument, boolean startup) {
         if (agentArgument != null) {
             String[] strParts = agentArgument.split(";");
             rootPkg = strParts[0].trim();
             rootPath = rootPkg.replace(".", "/");
-            for (int i = 1; i < strParts.length; i++)
-                inspectedClasses.add(strParts[i].trim());
+            for (int i = 1; i < strParts.length; i++) {
+                String part = strParts[i].trim();
+                int pos = part.indexOf('=');
+                if (pos > 0)
+                    setOption(part.substring(0, pos).trim(), part.substring(pos + 1).trim());
+                else
+                    inspectedClasses.add(part);
+            }
+        }
+        if (!startup) return;
+        if (trackGcPauses)
+            watchGcPauses();
+        if (compensateProbeOverhead)
+            calibrate();
+    }
+
+    /**
+     * Apply agent option
+     *
+     * @param key   option name
+     * @param value option value
+     */
+    void setOption(String key, String value) {
+        try {
+            if (key.equals("slowMs"))
+                slowThresholdMs = Integer.parseInt(value);
+            else if (key.startsWith("slowMs."))
+                slowThresholds.put(key.substring(7), Integer.parseInt(value));
+            else if (key.equals("slowKeep")) {
+                int kept = Integer.parseInt(value);
+                if (kept < 1)
+                    System.out.println("Wrong value of profiler option " + key + ": " + value);
+                else
+                    slowCallsKept = kept;
+            }
+            else if (key.equals("slowArgs"))
+                slowCallsArgs = Boolean.parseBoolean(value);
+            else if (key.equals("async"))
+                trackAsyncTasks = Boolean.parseBoolean(value);
+            else if (key.equals("threads"))
+                setThreadGrouping(value);
+            else if (key.equals("gc")) {
+                String mode = value.toLowerCase();
+                if (mode.equals("false") || mode.equals("true") || mode.equals("exclude")) {
+                    trackGcPauses = !mode.equals("false");
+                    excludeGcPauses = mode.equals("exclude");
+                } else {
+                    System.out.println("Wrong value of profiler option " + key + ": " + value);
+                }
+            } else if (key.equals("calls")) {
+                for (String category : value.split(","))
+                    timedCalls.add(category.trim());
+            }
+            else
+                System.out.println("Unknown profiler option: " + key);
+        } catch (NumberFormatException e) {
+            System.out.println("Wrong value of profiler option " + key + ": " + value);
+        }
+    }
+
+    /**
+     * Change threads grouping in report, can be called at runtime
+     *
+     * @param grouping {@code all}, {@code thread}, {@code pool}, {@code group} or {@code topN}, like {@code top5}
+     * @see Profiler#threadGrouping
+     */
+    public void setThreadGrouping(String grouping) {
+        grouping = grouping.trim().toLowerCase();
+        try {
+            if (grouping.startsWith("top")) {
+                if (grouping.length() > 3)
+                    topThreads = Integer.parseInt(grouping.substring(3));
+                threadGrouping = ThreadGrouping.TOP;
+            } else {
+                threadGrouping = ThreadGrouping.valueOf(grouping.toUpperCase());
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println("Wrong threads grouping: " + grouping);
+        }
+    }
+
+    /**
+     * Get slow call threshold of the method
+     *
+     * @param name method name
+     * @return threshold in nanoseconds, {@code -1} if slow calls of the method are not saved
+     */
+    long getSlowThresholdNanos(String name) {
+        for (Map.Entry<String, Integer> e : slowThresholds.entrySet())
+            if (name.contains(e.getKey()))
+                return e.getValue() * 1_000_000L;
+        return slowThresholdMs > 0 ? slowThresholdMs * 1_000_000L : -1;
+    }
+
+    /**
+     * Subscribe to notifications of garbage collectors
+     * Concurrent collector cycles are not pauses and are skipped
+     */
+    void watchGcPauses() {
+        try {
+            long jvmStartTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+            NotificationListener listener = (notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+                    return;
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                if (info.getGcName().contains("Concurrent") || info.getGcName().contains("Cycles")
+                        || info.getGcAction().contains("concurrent"))
+                    return;
+                addGcPause(jvmStartTime + info.getGcInfo().getStartTime(), info.getGcInfo().getDuration());
+            };
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+                if (bean instanceof NotificationEmitter)
+                    ((NotificationEmitter) bean).addNotificationListener(listener, null, null);
+        } catch (Throwable t) {
+            System.out.println("GC pauses are not watched: " + t);
+        }
+    }
+
+    /**
+     * Save finished run of the section, called under {@code sectionsLock}
+     *
+     * @param section  stopped section
+     * @param threadId thread of the run
+     */
+    private void addFinishedRun(Section section, long threadId) {
+        finishedRuns[finishedRunsPos] = section;
+        finishedRunThreads[finishedRunsPos] = threadId;
+        finishedRunStarts[finishedRunsPos] = section.runStartTime;
+        finishedRunEnds[finishedRunsPos] = System.currentTimeMillis();
+        finishedRunsPos = (finishedRunsPos + 1) % finishedRunsKept;
+    }
+
+    /**
+     * Attribute GC pause to the sections on the stacks of all threads and to recently finished runs
+     * Section, started last among the overlapping runs of a thread, was innermost and gets the pause to self time
+     * Sections, left running without exit, are not on the stack and don't get it
+     *
+     * @param startTime system time of pause start
+     * @param duration  pause duration, milliseconds
+     */
+    void addGcPause(long startTime, long duration) {
+        long endTime = startTime + duration;
+        // innermost run of each thread: section, start time and overlap
+        // самый вложенный запуск в каждом потоке: секция, время старта и перекрытие
+        Hashtable<Long, Section> innerSections = new Hashtable<>();
+        Hashtable<Long, long[]> innerRuns = new Hashtable<>();
+        sectionsLock.lock();
+        try {
+            gcPausesTime += duration;
+            gcPausesCount++;
+            for (int i = 0; i < finishedRunsKept; i++) {
+                Section s = finishedRuns[i];
+                if (s == null || finishedRunEnds[i] <= startTime) continue;
+                int overlap = s.addGcPause(finishedRunStarts[i], finishedRunEnds[i], startTime, endTime);
+                long[] inner = innerRuns.get(finishedRunThreads[i]);
+                if (overlap > 0 && (inner == null || inner[0] < finishedRunStarts[i])) {
+                    innerSections.put(finishedRunThreads[i], s);
+                    innerRuns.put(finishedRunThreads[i], new long[]{finishedRunStarts[i], overlap});
+                }
+            }
+            synchronized (threadStates) {
+                for (Iterator<ThreadState> it = threadStates.iterator(); it.hasNext(); ) {
+                    ThreadState state = it.next();
+                    if (!state.thread.isAlive()) {
+                        it.remove();
+                        continue;
+                    }
+                    long threadId = state.thread.getId();
+                    for (Section s = state.current; s != null; s = s.caller) {
+                        int overlap = s.addGcPause(s.runStartTime, endTime, startTime, endTime);
+                        long[] inner = innerRuns.get(threadId);
+                        if (overlap > 0 && (inner == null || inner[0] < s.runStartTime)) {
+                            innerSections.put(threadId, s);
+                            innerRuns.put(threadId, new long[]{s.runStartTime, overlap});
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<Long, Section> e : innerSections.entrySet())
+                e.getValue().selfGcTime += (int) innerRuns.get(e.getKey())[1];
+        } finally {
+            sectionsLock.unlock();
         }
     }
 
+    /**
+     * Measure probe cost at startup on a private profiler instance, shared sections are not touched
+     * Later samples of real probes refine the estimate
+     *
+     * @see Profiler#addProbeSample(long, long)
+     */
+    void calibrate() {
+        Profiler probe = new Profiler(null, false);
+        long enterTime = 0;
+        long exitTime = 0;
+        for (int i = 0; i < calibrationProbes * 2; i++) {
+            long start = System.nanoTime();
+            probe.enterSection("calibration");
+            long middle = System.nanoTime();
+            probe.exitSection("calibration");
+            // first half is a warm-up
+            // первая половина - разогрев
+            if (i >= calibrationProbes) {
+                enterTime += middle - start;
+                exitTime += System.nanoTime() - middle;
+            }
+        }
+        enterCostNanos = Math.max(1, enterTime / calibrationProbes);
+        exitCostNanos = Math.max(1, exitTime / calibrationProbes);
+    }
+
+    /**
+     * Add measured probe time to the moving average of probe cost
+     *
+     * @param average current average, nanoseconds
+     * @param sample  measured time of one probe, nanoseconds
+     * @return new average, recent probes have more weight
+     */
+    long addProbeSample(long average, long sample) {
+        return average == 0 ? sample : (average * 7 + sample) / 8;
+    }
+
     /**
      * Transforms the given class file and returns a new replacement class file.
      *
@@ -183,9 +581,8 @@ public class Profiler implements ClassFileTransformer {
                 }
                 if (inspect) {
                     if (className.startsWith(currentPath)) {
-                        inspect = !(className.equals(currentPath + "/SectionLink")
-                                || className.equals(currentPath + "/Section")
-                                || className.equals(currentPath + "/Profiler"));
+                        inspect = !(agentClasses.contains(className.substring(currentPath.length() + 1))
+                                || className.startsWith(currentPath + "/Profiler"));
                     }
                 }
             }
@@ -232,10 +629,19 @@ public class Profiler implements ClassFileTransformer {
 
                             //System.out.println("transformMethod(" + secName + ')');
 
-                            method.insertBefore(String.format(currentPkg
-                                    + ".Profiler.getInstance().enterSection(\"%s\");", secName));
+                            if (trackAsyncTasks || !timedCalls.isEmpty())
+                                method.instrument(new CallSiteEditor(currentPkg + ".Profiler.getInstance()",
+                                        trackAsyncTasks, timedCalls));
+                            if (slowCallsArgs && getSlowThresholdNanos(secName) >= 0)
+                                method.insertBefore(String.format(currentPkg
+                                        + ".Profiler.getInstance().enterSection(\"%s\", $args);", secName));
+                            else
+                                method.insertBefore(String.format(currentPkg
+                                        + ".Profiler.getInstance().enterSection(\"%s\");", secName));
+                            // exit as finally block, so enter and exit are paired on exceptions too
+                            // выход в блоке finally, чтобы вход и выход были парными и при исключениях
                             method.insertAfter(String.format(currentPkg
-                                    + ".Profiler.getInstance().exitSection(\"%s\");", secName));
+                                    + ".Profiler.getInstance().exitSection(\"%s\");", secName), true);
                             if (method.getName().compareTo("main") == 0) {
                                 method.insertAfter(String.format(currentPkg
                                         + ".Profiler.getInstance().printStatisticInfo(\"%s.stat\");", clazz.getSimpleName()));
@@ -265,6 +671,7 @@ public class Profiler implements ClassFileTransformer {
      */
     public void printStatisticInfo(String className) {
         System.out.println(getSectionsInfo());
+        System.out.print(getSlowCallsInfo());
     }
 
     /**
@@ -276,7 +683,7 @@ public class Profiler implements ClassFileTransformer {
     public void printStatisticToFile(String className) {
         //System.out.println("File: "+fileName);
         try (FileWriter fileWriter = new FileWriter(className, true)) {
-            fileWriter.write(new Date().toString() + getSectionsInfo() + "\n\n");
+            fileWriter.write(new Date().toString() + getSectionsInfo() + "\n" + getSlowCallsInfo() + "\n");
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -284,6 +691,30 @@ public class Profiler implements ClassFileTransformer {
 
     Hashtable<String, Section> sections = new Hashtable<String, Section>();
     Lock sectionsLock = new ReentrantLock();
+    private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(this::newThreadState);
+
+    /**
+     * States of all threads, which used profiler, to find sections on their stacks
+     */
+    private final List<ThreadState> threadStates = new ArrayList<ThreadState>();
+
+    /**
+     * Create and register state of the current thread
+     *
+     * @return new thread state
+     */
+    private ThreadState newThreadState() {
+        ThreadState state = new ThreadState();
+        synchronized (threadStates) {
+            threadStates.add(state);
+        }
+        return state;
+    }
+
+    /**
+     * Slowest calls of each method, the fastest of them is on the head of queue
+     */
+    final Hashtable<String, PriorityQueue<SlowCall>> slowCalls = new Hashtable<String, PriorityQueue<SlowCall>>();
 
     /**
      * Enter profiling section
@@ -291,23 +722,49 @@ public class Profiler implements ClassFileTransformer {
      * @param name name of section
      */
     public void enterSection(String name) {
+        enterSection(name, null);
+    }
+
+    /**
+     * Enter profiling section
+     *
+     * @param name name of section
+     * @param args method arguments, saved if call appears to be slow
+     */
+    public void enterSection(String name, Object[] args) {
         Section section;
         String secName = Thread.currentThread().getName() + '@' + name;
+        ThreadState state = threadState.get();
+        state.probes++;
+        long sampleStart = compensateProbeOverhead && state.probes % probeSampleRate == 0 ? System.nanoTime() : 0;
         sectionsLock.lock();
         try {
             section = sections.get(secName);
             if (section == null) {
                 section = new Section(secName);
+                section.slowThresholdNanos = getSlowThresholdNanos(name);
                 sections.put(secName, section);
             }
+            // probe cost goes to self time of the innermost running section
+            // затраты на замер попадают в собственное время самой вложенной секции
+            Section outer = state.current;
+            if (outer != null)
+                outer.childProbes++;
             if (!section.isRun) {
                 for (Section i : sections.values())
                     i.addInsider(section);
+                section.caller = outer;
+                section.probesOnEnter = state.probes;
+                state.current = section;
             }
         } finally {
             sectionsLock.unlock();
         }
         section.enter();
+        if (section.slowThresholdNanos >= 0)
+            state.pushCall(section, args);
+        if (sampleStart != 0)
+            enterCostNanos = addProbeSample(enterCostNanos, System.nanoTime() - sampleStart);
     }
 
     /**
@@ -317,17 +774,253 @@ public class Profiler implements ClassFileTransformer {
      */
     public void exitSection(String name) {
         String secName = Thread.currentThread().getName() + '@' + name;
+        ThreadState state = threadState.get();
+        state.exits++;
+        long sampleStart = compensateProbeOverhead && state.exits % probeSampleRate == 0 ? System.nanoTime() : 0;
+        Section section;
         sectionsLock.lock();
         try {
-            Section section = sections.get(secName);
+            section = sections.get(secName);
             section.exit();
             if (!section.isRun) {
                 for (Section i : sections.values())
                     i.removeInsider(section);
+                section.innerProbes += state.probes - section.probesOnEnter;
+                if (trackGcPauses)
+                    addFinishedRun(section, state.thread.getId());
+                // unwind to the caller, even if inner sections were left without exit
+                // вернемся к вызвавшей секции, даже если вложенные остались без выхода
+                for (Section i = state.current; i != null; i = i.caller) {
+                    if (i == section) {
+                        state.current = section.caller;
+                        break;
+                    }
+                }
+                section.caller = null;
             }
         } finally {
             sectionsLock.unlock();
         }
+        long duration = -1;
+        Object[] args = null;
+        if (section.slowThresholdNanos >= 0) {
+            int pos = state.popCall(section);
+            if (pos >= 0) {
+                duration = System.nanoTime() - state.callStarts[pos];
+                args = state.callArgs[pos];
+                state.callArgs[pos] = null;
+            }
+        }
+        // saving of slow call is rare and expensive, it is not a part of usual probe cost
+        // сохранение медленного вызова редкое и дорогое, в обычную стоимость замера не входит
+        if (sampleStart != 0)
+            exitCostNanos = addProbeSample(exitCostNanos, System.nanoTime() - sampleStart);
+        if (duration > section.slowThresholdNanos)
+            addSlowCall(name, duration, args);
+    }
+
+    /**
+     * Save slow call, if it is one of the {@code slowCallsKept} slowest calls of the method
+     * Stack trace and arguments are taken only for the calls to be saved
+     *
+     * @param name     name of section
+     * @param duration call duration, nanoseconds
+     * @param args     method arguments or {@code null}
+     */
+    void addSlowCall(String name, long duration, Object[] args) {
+        PriorityQueue<SlowCall> queue;
+        synchronized (slowCalls) {
+            queue = slowCalls.get(name);
+            if (queue == null) {
+                queue = new PriorityQueue<SlowCall>((e1, e2) -> Long.compare(e1.duration, e2.duration));
+                slowCalls.put(name, queue);
+            }
+            SlowCall fastest = queue.peek();
+            if (queue.size() >= slowCallsKept && (fastest == null || fastest.duration >= duration))
+                return;
+        }
+
+        // cut off profiler frames, leave the method and its callers
+        // отрежем кадры профилировщика, оставим сам метод и вызывающих
+        StackTraceElement[] trace = new Throwable().getStackTrace();
+        int from = 0;
+        while (from < trace.length && trace[from].getClassName().equals(Profiler.class.getName()))
+            from++;
+        StackTraceElement[] stack = Arrays.copyOfRange(trace, from, Math.min(trace.length, from + slowCallStackDepth));
+
+        String argsString = null;
+        if (args != null) {
+            try {
+                argsString = Arrays.deepToString(args);
+            } catch (RuntimeException e) {
+                argsString = "<" + e + ">";
+            }
+        }
+
+        SlowCall call = new SlowCall(System.currentTimeMillis(), Thread.currentThread().getName(),
+                duration, stack, argsString);
+        synchronized (slowCalls) {
+            queue.add(call);
+            while (queue.size() > slowCallsKept)
+                queue.poll();
+        }
+    }
+
+    /**
+     * Get string explanation of saved slow calls
+     *
+     * @return slowest calls of each method, from the slowest one, with stack traces
+     */
+    public String getSlowCallsInfo() {
+        StringBuilder sb = new StringBuilder();
+        synchronized (slowCalls) {
+            List<String> names = new ArrayList<>(slowCalls.keySet());
+            Collections.sort(names);
+            for (String name : names) {
+                List<SlowCall> list = new ArrayList<>(slowCalls.get(name));
+                if (list.isEmpty()) continue;
+                list.sort((e1, e2) -> -Long.compare(e1.duration, e2.duration));
+                String shortName = name;
+                if (!rootPkg.isEmpty() && name.startsWith(rootPkg + "."))
+                    shortName = name.substring(rootPkg.length() + 1);
+                sb.append("\nSlowest calls of " + shortName + ":");
+                for (SlowCall c : list)
+                    sb.append(c);
+                sb.append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Capture section, where the task is submitted
+     * Path keeps only the root origin and the direct submitter, so resubmitting tasks
+     * (polling, retries) don't create a new section on every hop
+     *
+     * @return context of the task or {@code null}, if submitted outside of inspected methods
+     */
+    TaskContext getTaskContext() {
+        ThreadState state = threadState.get();
+        Section current = state.current;
+        if (current == null) return null;
+        String name = current.name.substring(current.name.indexOf('@') + 1);
+        String path;
+        if (name.startsWith(ASYNC_SECTION) || state.origin == null) {
+            path = state.origin == null ? name : state.origin;
+        } else {
+            int pos = state.origin.indexOf(" -> ");
+            String root = pos < 0 ? state.origin : state.origin.substring(0, pos);
+            path = root.equals(name) ? root : root + " -> " + name;
+        }
+        return new TaskContext(current, path);
+    }
+
+    /**
+     * Start execution of a task in the thread, it was passed to
+     *
+     * @param context context of the task
+     * @return previous task path of the thread, to be restored in {@code endTask()}
+     */
+    String beginTask(TaskContext context) {
+        ThreadState state = threadState.get();
+        String origin = state.origin;
+        state.origin = context.path;
+        enterSection(ASYNC_SECTION + context.path);
+        return origin;
+    }
+
+    /**
+     * Finish execution of a task, add it's time to the section, where it was submitted
+     *
+     * @param context   context of the task
+     * @param origin    value, returned by {@code beginTask()}
+     * @param startTime {@code System.nanoTime()} before {@code beginTask()}
+     */
+    void endTask(TaskContext context, String origin, long startTime) {
+        exitSection(ASYNC_SECTION + context.path);
+        threadState.get().origin = origin;
+        int time = (int) ((System.nanoTime() - startTime) / 1_000_000L);
+        sectionsLock.lock();
+        try {
+            context.section.asyncTime += time;
+        } finally {
+            sectionsLock.unlock();
+        }
+    }
+
+    /**
+     * Run task, linked with the submitting section
+     * Checked exceptions of the task are rethrown unchanged
+     *
+     * @param context context of the task
+     * @param task    task body
+     * @return result of the task
+     */
+    private <V> V runInContext(TaskContext context, Callable<V> task) {
+        long start = System.nanoTime();
+        String origin = beginTask(context);
+        try {
+            return task.call();
+        } catch (Exception e) {
+            throw Profiler.<RuntimeException>rethrow(e);
+        } finally {
+            endTask(context, origin, start);
+        }
+    }
+
+    /**
+     * Throw any exception without declaring it
+     *
+     * @param e exception to throw
+     * @return never returns, declared to be used in {@code throw} statement
+     * @throws E always
+     */
+    @SuppressWarnings("unchecked")
+    private static <E extends Exception> E rethrow(Exception e) throws E {
+        throw (E) e;
+    }
+
+    /**
+     * Wrap task to link it with the submitting section
+     * {@code wrapCallable()}, {@code wrapSupplier()} and other wrappers do the same for their interfaces
+     *
+     * @param task task to run in another thread
+     * @return wrapped task, or the task itself if it is submitted outside of inspected methods
+     * @see CallSiteEditor
+     */
+    public Runnable wrapRunnable(Runnable task) {
+        TaskContext context = task == null ? null : getTaskContext();
+        return context == null ? task : () -> runInContext(context, () -> { task.run(); return null; });
+    }
+
+    public <V> Callable<V> wrapCallable(Callable<V> task) {
+        TaskContext context = task == null ? null : getTaskContext();
+        return context == null ? task : () -> runInContext(context, task);
+    }
+
+    public <T> Supplier<T> wrapSupplier(Supplier<T> task) {
+        TaskContext context = task == null ? null : getTaskContext();
+        return context == null ? task : () -> runInContext(context, task::get);
+    }
+
+    public <T, R> Function<T, R> wrapFunction(Function<T, R> task) {
+        TaskContext context = task == null ? null : getTaskContext();
+        return context == null ? task : (t) -> runInContext(context, () -> task.apply(t));
+    }
+
+    public <T> Consumer<T> wrapConsumer(Consumer<T> task) {
+        TaskContext context = task == null ? null : getTaskContext();
+        return context == null ? task : (t) -> runInContext(context, () -> { task.accept(t); return null; });
+    }
+
+    public <T, U, R> BiFunction<T, U, R> wrapBiFunction(BiFunction<T, U, R> task) {
+        TaskContext context = task == null ? null : getTaskContext();
+        return context == null ? task : (t, u) -> runInContext(context, () -> task.apply(t, u));
+    }
+
+    public <T, U> BiConsumer<T, U> wrapBiConsumer(BiConsumer<T, U> task) {
+        TaskContext context = task == null ? null : getTaskContext();
+        return context == null ? task : (t, u) -> runInContext(context, () -> { task.accept(t, u); return null; });
     }
 
     /**
@@ -335,6 +1028,7 @@ public class Profiler implements ClassFileTransformer {
      */
     public void clear() {
         sections.clear();
+        slowCalls.clear();
     }
 
     /**
@@ -371,6 +1065,37 @@ public class Profiler implements ClassFileTransformer {
         return str1.substring(0, i);
     }
 
+    /**
+     * Get pool name by thread name
+     *
+     * @param threadName name of thread
+     * @return name without number of thread in pool, {@code pool-3-thread-17} becomes {@code pool-3}
+     */
+    public String getPoolName(String threadName) {
+        String name = POOL_THREAD_SUFFIX.matcher(threadName).replaceFirst("");
+        return name.isEmpty() ? threadName : name;
+    }
+
+    /**
+     * Get names of the most expensive threads
+     *
+     * @param count how many threads to take
+     * @return thread names with the biggest self time of sections
+     */
+    Set<String> getTopThreads(int count) {
+        Hashtable<String, Long> costs = new Hashtable<>();
+        for (Section s : sections.values()) {
+            String thread = s.name.substring(0, Math.max(0, s.name.indexOf('@')));
+            costs.merge(thread, (long) s.selfTime, Long::sum);
+        }
+        List<Map.Entry<String, Long>> list = new ArrayList<>(costs.entrySet());
+        list.sort((e1, e2) -> -Long.compare(e1.getValue(), e2.getValue()));
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i < count && i < list.size(); i++)
+            result.add(list.get(i).getKey());
+        return result;
+    }
+
     /**
      * Get string explanation of Sections list
      *
@@ -379,17 +1104,33 @@ public class Profiler implements ClassFileTransformer {
     public String getSectionsInfo() {
         sectionsLock.lock();
         try {
-            // if no need to join, then no need to work hard :)
-            // если не нужно объединять потоки, не будем мудрствовать
-            if (!joinThreadsInReport) return sections.values().toString().replace(rootPkg, "");
+            ThreadGrouping grouping = threadGrouping;
+            Set<String> topNames = grouping == ThreadGrouping.TOP ? getTopThreads(topThreads) : null;
 
-            // throw out thread names from section names, join same methods from different threads
-            // отбросим имена потоков из имен секций, сохраним объединяя в Hashtable
+            // replace thread names in section names by the group, join same methods from threads of one group
+            // заменим имена потоков в именах секций на группу, сохраним объединяя в Hashtable
 
             Hashtable<String, Section> table = new Hashtable<>();
+            long probesCount = 0;
             for (Section s : sections.values()) {
+                probesCount += s.execsCount;
                 int pos = s.name.indexOf('@');
+                String thread = s.name.substring(0, Math.max(0, pos));
                 String secName = s.name.substring(pos + 1);
+                switch (grouping) {
+                    case THREAD:
+                        secName = thread + '@' + secName;
+                        break;
+                    case POOL:
+                        secName = getPoolName(thread) + '@' + secName;
+                        break;
+                    case GROUP:
+                        secName = s.threadGroup + '@' + secName;
+                        break;
+                    case TOP:
+                        secName = (topNames.contains(thread) ? thread : "others") + '@' + secName;
+                        break;
+                }
                 Section ns = table.get(secName);
                 if (ns == null) {
                     ns = new Section(secName);
@@ -398,6 +1139,25 @@ public class Profiler implements ClassFileTransformer {
                 ns.totalTime += s.totalTime;
                 ns.selfTime += s.selfTime;
                 ns.execsCount += s.execsCount;
+                ns.innerProbes += s.innerProbes;
+                ns.childProbes += s.childProbes;
+                ns.asyncTime += s.asyncTime;
+                ns.gcTime += s.gcTime;
+                ns.selfGcTime += s.selfGcTime;
+            }
+
+            // subtract estimated probes cost
+            // вычтем оценку затрат на сами замеры
+
+            boolean probeCostKnown = enterCostNanos > 0 && exitCostNanos > 0;
+            long probeCost = compensateProbeOverhead && probeCostKnown ? enterCostNanos + exitCostNanos : 0;
+            for (Section s : table.values()) {
+                s.totalTime = Math.max(0, s.totalTime - (int) (s.innerProbes * probeCost / 1_000_000L));
+                s.selfTime = Math.max(0, s.selfTime - (int) (s.childProbes * probeCost / 1_000_000L));
+                if (excludeGcPauses) {
+                    s.totalTime = Math.max(0, s.totalTime - s.gcTime);
+                    s.selfTime = Math.min(s.totalTime, Math.max(0, s.selfTime - s.selfGcTime));
+                }
             }
 
             // cutting of the same package name from the list
@@ -406,10 +1166,12 @@ public class Profiler implements ClassFileTransformer {
             List<Section> list = new ArrayList<>(table.values());
             String pkgToTrunc = null;
             for (Section s : list) {
+                String name = s.name.substring(s.name.indexOf('@') + 1);
+                if (name.startsWith("[")) continue;
                 if (pkgToTrunc == null)
-                    pkgToTrunc = s.name;
+                    pkgToTrunc = name;
                 else
-                    pkgToTrunc = getEqualStartsWith(pkgToTrunc, s.name);
+                    pkgToTrunc = getEqualStartsWith(pkgToTrunc, name);
             }
             if (pkgToTrunc != null && !pkgToTrunc.isEmpty()) {
                 if (pkgToTrunc.charAt(pkgToTrunc.length() - 1) != '.')
@@ -442,7 +1204,17 @@ public class Profiler implements ClassFileTransformer {
             int maxCountLen = 5;
             int maxMsEach = -1;
             int maxMsLen = 7;
+            int maxAsyncLen = 0;
+            int maxGcLen = 0;
             for (Section s : list) {
+                if (s.gcTime > 0) {
+                    int c = Math.max(6, String.valueOf(s.gcTime).length() + 1);
+                    if (c > maxGcLen) maxGcLen = c;
+                }
+                if (s.asyncTime > 0) {
+                    int c = Math.max(9, String.valueOf(s.asyncTime).length() + 1);
+                    if (c > maxAsyncLen) maxAsyncLen = c;
+                }
                 int c = s.name.length();
                 if (c > maxNameLen) maxNameLen = c;
                 c = String.valueOf(s.totalTime).length();
@@ -490,6 +1262,8 @@ public class Profiler implements ClassFileTransformer {
                     + t.lpad("Total,ms", maxTotalLen)
                     + t.lpad("Self,ms", maxSelfLen)
                     + t.lpad("Count", maxCountLen));
+            if (maxAsyncLen > 0) sb.append(t.lpad("Async,ms", maxAsyncLen));
+            if (maxGcLen > 0) sb.append(t.lpad("GC,ms", maxGcLen));
             if (maxMsEach > 100000) sb.append(t.lpad("ms/exec", maxMsLen));
             else if (maxMsEach > 100) sb.append(t.lpad("mcs/exec", maxMsLen));
             else if (maxMsEach >= 0) sb.append(t.lpad("ns/exec", maxMsLen));
@@ -502,6 +1276,10 @@ public class Profiler implements ClassFileTransformer {
                         + s.lpad(s.totalTime, maxTotalLen)
                         + s.lpad(s.selfTime, maxSelfLen)
                         + s.lpad(s.execsCount, maxCountLen));
+                if (maxAsyncLen > 0)
+                    sb.append(s.lpad(s.asyncTime, maxAsyncLen));
+                if (maxGcLen > 0)
+                    sb.append(s.lpad(s.gcTime, maxGcLen));
                 if (s.execsCount >= calcSpeedOnCount)
                     if (maxMsEach > 80000)
                         sb.append(t.lpad(s.selfTime / s.execsCount, maxMsLen));
@@ -510,6 +1288,14 @@ public class Profiler implements ClassFileTransformer {
                     else
                         sb.append(t.lpad(1_000_000L * (long) s.selfTime / s.execsCount, maxMsLen));
             }
+            if (probeCost > 0)
+                sb.append("\nProbe overhead: ~" + (probesCount * probeCost / 1_000_000L) + " ms estimated ("
+                        + probesCount + " probes, " + probeCost + " ns each), subtracted from Total and Self");
+            else if (compensateProbeOverhead)
+                sb.append("\nProbe overhead: not estimated yet (" + probesCount + " probes)");
+            if (gcPausesCount > 0)
+                sb.append("\nGC pauses: " + gcPausesTime + " ms (" + gcPausesCount + " pauses)"
+                        + (excludeGcPauses ? ", subtracted from Total and Self" : ""));
             return sb.toString();
         } finally {
             sectionsLock.unlock();
@@ -558,6 +1344,10 @@ class Section {
      * thread, section is run in
      */
     public long threadId;
+    /**
+     * thread group of the thread, section is run in
+     */
+    public String threadGroup;
     /**
      * name of section
      */
@@ -578,10 +1368,42 @@ class Section {
      * is section run now?
      */
     boolean isRun;
+    /**
+     * section, that was innermost running in the thread, when this one started
+     */
+    Section caller;
+    /**
+     * thread probes counter value, when section started
+     */
+    long probesOnEnter;
+    /**
+     * probes executed inside section on any depth, they are part of total time
+     */
+    public long innerProbes = 0;
+    /**
+     * probes executed directly inside section, they are part of self time
+     */
+    public long childProbes = 0;
+    /**
+     * invocations longer than this are saved as slow calls, nanoseconds. {@code -1} - don't save
+     */
+    long slowThresholdNanos = -1;
+    /**
+     * execution time of tasks, submitted from the section to other threads, in milliseconds
+     */
+    public int asyncTime = 0;
+    /**
+     * GC pauses while section was run, in milliseconds, they are part of total time
+     */
+    public int gcTime = 0;
+    /**
+     * GC pauses while section was innermost in it's thread, in milliseconds, they are part of self time
+     */
+    public int selfGcTime = 0;
     /**
      * last section run time
      */
-    private long runStartTime;
+    long runStartTime;
     /**
      * who is running inside
      */
@@ -595,6 +1417,8 @@ class Section {
     Section(String name) {
         this.name = name;
         this.threadId = Thread.currentThread().getId();
+        ThreadGroup group = Thread.currentThread().getThreadGroup();
+        this.threadGroup = group == null ? "" : group.getName();
         runInside = new Hashtable<Integer, SectionLink>();
         synchronized (Section.class) {
             id = nextId++;
@@ -666,6 +1490,22 @@ class Section {
         }
     }
 
+    /**
+     * Add GC pause to total time, if it overlaps the run of the section
+     *
+     * @param runStart   system time of the run start
+     * @param runEnd     system time of the run end
+     * @param pauseStart system time of pause start
+     * @param pauseEnd   system time of pause end
+     * @return overlap of pause and run, milliseconds, {@code 0} if they don't overlap
+     */
+    int addGcPause(long runStart, long runEnd, long pauseStart, long pauseEnd) {
+        int overlap = (int) (Math.min(pauseEnd, runEnd) - Math.max(pauseStart, runStart));
+        if (overlap <= 0) return 0;
+        gcTime += overlap;
+        return overlap;
+    }
+
     /**
      * Fill {@code string} with spaces from the left, until it's length become {@code length}
      * If {@code string} length is greater than {@code length}, it won't be truncated
@@ -717,7 +1557,7 @@ class Section {
     }
 
     /**
-     * This string will be displayed, when {@code joinThreadsInReport} is set to {@code false}
+     * Raw section info, without joining of threads
      *
      * @return cumulative section info in one line
      */
@@ -727,6 +1567,335 @@ class Section {
     }
 }
 
+/**
+ * Profiling state of one thread
+ */
+class ThreadState {
+
+    /**
+     * Thread of the state
+     */
+    final Thread thread = Thread.currentThread();
+
+    /**
+     * Innermost running section
+     */
+    Section current;
+
+    /**
+     * Count of {@code enterSection()} calls in the thread
+     */
+    long probes;
+
+    /**
+     * Count of {@code exitSection()} calls in the thread
+     */
+    long exits;
+
+    /**
+     * Path of sections, where the running task was submitted, {@code null} if no task is run
+     */
+    String origin;
+
+    /**
+     * Stack of running calls, watched for slowness
+     */
+    Section[] calls = new Section[16];
+    long[] callStarts = new long[16];
+    Object[][] callArgs = new Object[16][];
+    int callsCount = 0;
+
+    /**
+     * Start watching of call duration
+     *
+     * @param section section of called method
+     * @param args    method arguments or {@code null}
+     */
+    void pushCall(Section section, Object[] args) {
+        if (callsCount == calls.length) {
+            calls = Arrays.copyOf(calls, callsCount * 2);
+            callStarts = Arrays.copyOf(callStarts, callsCount * 2);
+            callArgs = Arrays.copyOf(callArgs, callsCount * 2);
+        }
+        calls[callsCount] = section;
+        callArgs[callsCount] = args;
+        callStarts[callsCount] = System.nanoTime();
+        callsCount++;
+    }
+
+    /**
+     * Finish watching of call duration
+     * Calls, left without exit (by exception), are thrown away
+     *
+     * @param section section of called method
+     * @return position of the call in the stack or {@code -1}, if it was not watched
+     */
+    int popCall(Section section) {
+        for (int i = callsCount - 1; i >= 0; i--) {
+            if (calls[i] == section) {
+                for (int j = i; j < callsCount; j++) {
+                    calls[j] = null;
+                    if (j > i) callArgs[j] = null;
+                }
+                callsCount = i;
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
+/**
+ * Section, where a task was submitted to another thread
+ */
+class TaskContext {
+
+    /**
+     * Submitting section
+     */
+    final Section section;
+
+    /**
+     * Root origin and direct submitter of the task, divided by " -> "
+     */
+    final String path;
+
+    TaskContext(Section section, String path) {
+        this.section = section;
+        this.path = path;
+    }
+}
+
+/**
+ * Editor of call sites in inspected methods
+ * Wraps tasks, passed to executors, {@code CompletableFuture} and {@code Thread} constructor
+ * Surrounds I/O and JDBC calls by sections, JDK itself stays not instrumented
+ *
+ * @see Profiler#trackAsyncTasks
+ * @see Profiler#timedCalls
+ */
+class CallSiteEditor extends ExprEditor {
+
+    /**
+     * Wrapping methods of profiler for functional interfaces
+     */
+    static final Map<String, String> TASK_WRAPPERS = Map.of(
+            "java.lang.Runnable", "wrapRunnable",
+            "java.util.concurrent.Callable", "wrapCallable",
+            "java.util.function.Supplier", "wrapSupplier",
+            "java.util.function.Function", "wrapFunction",
+            "java.util.function.Consumer", "wrapConsumer",
+            "java.util.function.BiFunction", "wrapBiFunction",
+            "java.util.function.BiConsumer", "wrapBiConsumer");
+
+    /**
+     * Methods of {@code java.util.concurrent} classes, which run given tasks
+     * {@code CompletableFuture.then*()} are also wrapped
+     */
+    static final List<String> TASK_METHODS = List.of("execute", "submit", "schedule",
+            "scheduleAtFixedRate", "scheduleWithFixedDelay", "runAsync", "supplyAsync",
+            "handle", "handleAsync", "whenComplete", "whenCompleteAsync", "exceptionally", "exceptionallyAsync");
+
+    /**
+     * Timed {@code java.io} classes, the same set for read and write sides: generic, file, buffered,
+     * data and object streams. Call site is matched by it's static type, so a wrapper or a generic stream
+     * is timed whatever is behind it, in-memory stream too. Only call sites typed as in-memory classes
+     * ({@code ByteArray*}, {@code String*}, {@code CharArray*}, {@code Piped*}) are not timed
+     */
+    static final List<String> IO_CLASSES = List.of(
+            "java.io.InputStream", "java.io.OutputStream", "java.io.Reader", "java.io.Writer",
+            "java.io.FileInputStream", "java.io.FileOutputStream", "java.io.FileReader", "java.io.FileWriter",
+            "java.io.BufferedInputStream", "java.io.BufferedOutputStream", "java.io.BufferedReader", "java.io.BufferedWriter",
+            "java.io.InputStreamReader", "java.io.OutputStreamWriter",
+            "java.io.DataInputStream", "java.io.DataOutputStream", "java.io.DataInput", "java.io.DataOutput",
+            "java.io.ObjectInputStream", "java.io.ObjectOutputStream", "java.io.ObjectInput", "java.io.ObjectOutput",
+            "java.io.PrintStream", "java.io.PrintWriter", "java.io.RandomAccessFile");
+
+    /**
+     * Timed methods of {@code java.io} classes, besides {@code read*()} and {@code write*()}
+     */
+    static final List<String> IO_METHODS = List.of("flush", "skip", "transferTo", "newLine",
+            "print", "println", "printf", "format");
+
+    /**
+     * Timed methods of {@code java.nio.channels} and {@code java.net} classes
+     */
+    static final List<String> CHANNEL_METHODS = List.of("read", "write", "transferTo", "transferFrom",
+            "force", "connect", "accept", "receive", "send");
+
+    /**
+     * Code to get profiler instance
+     */
+    private final String profiler;
+
+    /**
+     * Wrap tasks, passed to other threads
+     */
+    private final boolean wrapTasks;
+
+    /**
+     * Categories of timed calls
+     */
+    private final Set<String> timedCalls;
+
+    /**
+     * @param profiler   code to get profiler instance
+     * @param wrapTasks  wrap tasks, passed to other threads
+     * @param timedCalls categories of timed calls
+     */
+    CallSiteEditor(String profiler, boolean wrapTasks, Set<String> timedCalls) {
+        this.profiler = profiler;
+        this.wrapTasks = wrapTasks;
+        this.timedCalls = timedCalls;
+    }
+
+    @Override
+    public void edit(MethodCall m) throws CannotCompileException {
+        String name = m.getMethodName();
+        String className = m.getClassName();
+        if (wrapTasks && className.startsWith("java.util.concurrent.")
+                && (TASK_METHODS.contains(name) || name.startsWith("then"))) {
+            String wrap = getWrapCode(m.getSignature());
+            if (wrap != null)
+                m.replace("{ " + wrap + "$_ = $proceed($$); }");
+            return;
+        }
+        String secName = getTimedCallName(className, name);
+        if (secName != null) {
+            String enter = profiler + ".enterSection(\"" + secName + "\");";
+            String exit = profiler + ".exitSection(\"" + secName + "\");";
+            m.replace("{ " + enter + " try { $_ = $proceed($$); } catch (Throwable t) { " + exit + " throw t; } " + exit + " }");
+        }
+    }
+
+    /**
+     * Get section name of timed JDK call
+     *
+     * @param className  full name of called class
+     * @param methodName called method
+     * @return section name, or {@code null} if call should not be timed
+     */
+    String getTimedCallName(String className, String methodName) {
+        String shortName = className.substring(className.lastIndexOf('.') + 1);
+        if (timedCalls.contains("io")) {
+            if ((IO_CLASSES.contains(className) && (IO_METHODS.contains(methodName)
+                    || (methodName.startsWith("read") && !methodName.equals("ready")) || methodName.startsWith("write")))
+                    || ((className.startsWith("java.nio.channels.") || className.startsWith("java.net."))
+                    && CHANNEL_METHODS.contains(methodName))
+                    || (className.equals("java.nio.file.Files") && (methodName.startsWith("read")
+                    || methodName.startsWith("write") || methodName.equals("copy") || methodName.equals("move"))))
+                return "[io] " + shortName + "." + methodName;
+        }
+        if (timedCalls.contains("jdbc") && className.startsWith("java.sql.")) {
+            if (methodName.startsWith("execute") || methodName.equals("commit")
+                    || methodName.equals("rollback") || methodName.equals("next"))
+                return "[jdbc] " + methodName;
+        }
+        return null;
+    }
+
+    @Override
+    public void edit(NewExpr e) throws CannotCompileException {
+        if (wrapTasks && e.getClassName().equals("java.lang.Thread")) {
+            String wrap = getWrapCode(e.getSignature());
+            if (wrap != null)
+                e.replace("{ " + wrap + "$_ = $proceed($$); }");
+        }
+    }
+
+    /**
+     * Make code, wrapping task parameters
+     *
+     * @param descriptor method descriptor
+     * @return code or {@code null}, if there are no tasks in parameters
+     */
+    String getWrapCode(String descriptor) {
+        StringBuilder sb = new StringBuilder();
+        List<String> types = getParameterTypes(descriptor);
+        for (int i = 0; i < types.size(); i++) {
+            String wrapper = TASK_WRAPPERS.get(types.get(i));
+            if (wrapper != null)
+                sb.append("$" + (i + 1) + " = " + profiler + "." + wrapper + "($" + (i + 1) + "); ");
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    /**
+     * Parse parameter types from method descriptor
+     *
+     * @param descriptor method descriptor, like {@code (Ljava/lang/Runnable;J)V}
+     * @return class names of object parameters, descriptors of other ones
+     */
+    static List<String> getParameterTypes(String descriptor) {
+        List<String> result = new ArrayList<>();
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            int start = i;
+            while (descriptor.charAt(i) == '[') i++;
+            if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+            i++;
+            String type = descriptor.substring(start, i);
+            if (type.startsWith("L"))
+                type = type.substring(1, type.length() - 1).replace('/', '.');
+            result.add(type);
+        }
+        return result;
+    }
+}
+
+/**
+ * Saved slow call of a method
+ */
+class SlowCall {
+
+    /**
+     * System time of the call end
+     */
+    final long timestamp;
+
+    /**
+     * Name of the thread
+     */
+    final String thread;
+
+    /**
+     * Call duration, nanoseconds
+     */
+    final long duration;
+
+    /**
+     * Stack of the method and it's callers
+     */
+    final StackTraceElement[] stack;
+
+    /**
+     * {@code toString()} of the arguments or {@code null}
+     */
+    final String args;
+
+    SlowCall(long timestamp, String thread, long duration, StackTraceElement[] stack, String args) {
+        this.timestamp = timestamp;
+        this.thread = thread;
+        this.duration = duration;
+        this.stack = stack;
+        this.args = args;
+    }
+
+    /**
+     * @return call info with stack trace, each element on self line
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("\n  " + (duration / 1_000_000L) + " ms  " + new Date(timestamp) + "  " + thread);
+        if (args != null)
+            sb.append("  args: " + args);
+        for (StackTraceElement e : stack)
+            sb.append("\n      at " + e);
+        return sb.toString();
+    }
+}
+
 /**
  * Link to subsection class
  */